@@ -0,0 +1,317 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.LocalDateTime;
+
+public class AlarmBenchmark {
+    private static final char[] SENSOR_KEYS = { '1', '2', '3', '4', '5' };
+    private static final int WARMUP_TRIGGERS = 200;
+    private static final Pattern SENSOR_LINE = Pattern.compile("Sensor:\\s+(.+?)\r\n");
+    private static final Pattern TRIGGER_LINE = Pattern.compile("Trigger #:\\s+(\\d+)");
+    private static final Pattern STATUS_LINE = Pattern.compile("Status:\\s+(.+?)\r\n");
+    private static final Pattern TIME_LINE = Pattern.compile("Time:\\s+(\\S+)\r\n");
+    private static final int VERIFIED_ALERTS = 50;
+    private static final String BOUNDARY = "ALARM-BOUNDARY";
+    private static final Path ATTACHMENT = Paths.get("security.jpg");
+    private static final String SECOND_RELAY_DOMAIN = "relay2.localhost";
+    // Enough for a full 100 address To header plus the text part, without decoding the attachment
+    private static final int HEAD_BYTES = 16 * 1024;
+
+    // Usage: java AlarmBenchmark [triggers] [threads] [delayMillis] [failureRate] [chunking] [alertLength] [pipelining]
+    //                            [oncall]
+    // alertLength is how many triggers a sensor's alert lasts before it is cleared, 0 keeps every alert escalating
+    // oncall adds that many HIGH_ALERT recipients, split between two relays, each served by its own sink
+    public static void main(String[] args) throws Exception {
+        int triggers = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        long delayMillis = args.length > 2 ? Long.parseLong(args[2]) : 0;
+        double failureRate = args.length > 3 ? Double.parseDouble(args[3]) : 0.0;
+        boolean chunking = args.length <= 4 || Boolean.parseBoolean(args[4]);
+        int alertLength = args.length > 5 ? Integer.parseInt(args[5]) : 0;
+        boolean pipelining = args.length <= 6 || Boolean.parseBoolean(args[6]);
+        int oncall = args.length > 7 ? Integer.parseInt(args[7]) : 0;
+
+        List<SMTPSink> sinks = List.of(new SMTPSink(0, delayMillis, failureRate, chunking, pipelining),
+                new SMTPSink(0, delayMillis, failureRate, chunking, pipelining));
+        for (SMTPSink sink : sinks) {
+            sink.start();
+        }
+
+        // Must be set before practical6 is first touched, its relay settings are read once
+        System.setProperty("alarm.smtp.host", "localhost");
+        System.setProperty("alarm.smtp.port", String.valueOf(sinks.get(0).getPort()));
+        System.setProperty("alarm.relays", SECOND_RELAY_DOMAIN + "=localhost:" + sinks.get(1).getPort());
+
+        List<String> oncallList = new ArrayList<>();
+        for (int i = 0; i < oncall; i++) {
+            oncallList.add("oncall" + i + "@" + (i % 2 == 0 ? "localhost" : SECOND_RELAY_DOMAIN));
+        }
+        practical6.addRoute('*', practical6.Severity.HIGH_ALERT, oncallList);
+
+        PrintStream console = System.out;
+        PrintStream errors = System.err;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        System.setErr(new PrintStream(OutputStream.nullOutputStream()));
+
+        Trigger[] samples;
+        long elapsedNanos;
+        try {
+            runTriggers(WARMUP_TRIGGERS, threads, alertLength);
+            // Warm-up leaves every sensor escalated, start the measured run from a quiet system
+            practical6.resetAlerts();
+            sinks.forEach(SMTPSink::reset);
+
+            long start = System.nanoTime();
+            samples = runTriggers(triggers, threads, alertLength);
+            elapsedNanos = System.nanoTime() - start;
+        } finally {
+            System.setOut(console);
+            System.setErr(errors);
+            practical6.shutdown();
+            sinks.forEach(SMTPSink::stop);
+        }
+
+        List<SMTPSink.ReceivedMessage> messages = new ArrayList<>();
+        List<SMTPSink.ReceivedMessage> rejected = new ArrayList<>();
+        long bytesReceived = 0;
+        for (SMTPSink sink : sinks) {
+            messages.addAll(sink.getMessages());
+            rejected.addAll(sink.getRejectedMessages());
+            bytesReceived += sink.getBytesReceived();
+        }
+        int recipients = 0;
+        for (SMTPSink.ReceivedMessage message : messages) {
+            recipients += message.recipients.size();
+        }
+        long[] latencies = latencies(samples, messages, rejected);
+        int transactions = messages.size() + rejected.size();
+        double seconds = elapsedNanos / 1_000_000_000.0;
+
+        System.out.println("=== Alarm Throughput Benchmark ===");
+        System.out.printf("Triggers:        %d on %d threads (delay %d ms per reply, failure rate %.2f)%n",
+                triggers, threads, delayMillis, failureRate);
+        System.out.printf("Extensions:      CHUNKING/BINARYMIME %s, PIPELINING %s%n",
+                chunking ? "on" : "off", pipelining ? "on" : "off");
+        System.out.printf("Alert length:    %s%n", alertLength > 0 ? alertLength + " triggers per sensor" : "unbounded");
+        System.out.printf("On-call list:    %d extra HIGH_ALERT recipients over 2 relays%n", oncall);
+        System.out.printf("Elapsed:         %.2f s%n", seconds);
+        System.out.printf("Throughput:      %.1f alerts/sec%n", triggers / seconds);
+        System.out.printf("Transactions:    %d accepted, %d rejected (%d recipients, %d on the second relay)%n",
+                messages.size(), rejected.size(), recipients, sinks.get(1).getMessages().size());
+        System.out.printf("Bytes received:  %d (%d per transaction)%n",
+                bytesReceived, transactions == 0 ? 0 : bytesReceived / transactions);
+        System.out.printf("Delivered:       %d of %d alerts (failed alerts excluded from latency)%n",
+                latencies.length, triggers);
+        System.out.println("Trigger to 250 latency:");
+        System.out.printf("Latency p50:     %.3f ms%n", percentile(latencies, 0.50));
+        System.out.printf("Latency p99:     %.3f ms%n", percentile(latencies, 0.99));
+        System.out.printf("Latency p999:    %.3f ms%n", percentile(latencies, 0.999));
+
+        // The numbers above mean nothing if the SMTP path delivered broken mail, so fail the run on any mismatch
+        List<String> problems = verify(messages, rejected, chunking);
+        if (!problems.isEmpty()) {
+            System.out.println("Verification FAILED:");
+            problems.forEach(problem -> System.out.println("  " + problem));
+            System.exit(1);
+        }
+        System.out.printf("Verified:        %d alerts (recipients, MIME structure, attachment)%n",
+                Math.min(groupByAlert(messages).size(), VERIFIED_ALERTS));
+    }
+
+    // An alert may span several transactions (one per relay batch), so recipients are checked per alert
+    private static List<String> verify(List<SMTPSink.ReceivedMessage> messages,
+            List<SMTPSink.ReceivedMessage> rejected, boolean chunking) throws IOException {
+        List<String> problems = new ArrayList<>();
+        byte[] image = Files.exists(ATTACHMENT) ? Files.readAllBytes(ATTACHMENT) : null;
+        Set<String> failed = groupByAlert(rejected).keySet();
+        List<List<SMTPSink.ReceivedMessage>> alerts = new ArrayList<>(groupByAlert(messages).values());
+        int step = Math.max(1, alerts.size() / VERIFIED_ALERTS);
+
+        for (int i = 0; i < alerts.size() && i / step < VERIFIED_ALERTS; i += step) {
+            List<SMTPSink.ReceivedMessage> transactions = alerts.get(i);
+            String id = triggerId(transactions.get(0));
+            String firstText = new String(transactions.get(0).data, StandardCharsets.ISO_8859_1);
+
+            // A rejected transaction leaves its recipients out of the union, that alert is already counted as failed
+            if (!failed.contains(alertKey(transactions.get(0), new HashMap<>()))) {
+                Set<String> delivered = new HashSet<>();
+                transactions.forEach(message -> delivered.addAll(message.recipients));
+                List<String> expected = expectedRecipients(firstText);
+                if (expected == null || !delivered.equals(new HashSet<>(expected))) {
+                    problems.add(id + ": recipients " + delivered + ", expected " + expected);
+                }
+            }
+            if (image == null) {
+                continue;
+            }
+            for (SMTPSink.ReceivedMessage message : transactions) {
+                String text = new String(message.data, StandardCharsets.ISO_8859_1);
+                if (message.chunked != chunking) {
+                    problems.add(id + ": sent with " + (message.chunked ? "BDAT" : "DATA") + ", expected "
+                            + (chunking ? "BDAT" : "DATA"));
+                }
+                if (!text.contains("Content-Type: multipart/mixed; boundary=\"" + BOUNDARY + "\"")
+                        || !text.endsWith("--" + BOUNDARY + "--\r\n")) {
+                    problems.add(id + ": multipart structure is broken");
+                    continue;
+                }
+                byte[] attachment = extractAttachment(text);
+                if (attachment == null || !Arrays.equals(attachment, image)) {
+                    problems.add(id + ": attachment does not match " + ATTACHMENT);
+                }
+            }
+        }
+        return problems;
+    }
+
+    private static Map<String, List<SMTPSink.ReceivedMessage>> groupByAlert(List<SMTPSink.ReceivedMessage> messages) {
+        Map<String, List<SMTPSink.ReceivedMessage>> alerts = new LinkedHashMap<>();
+        Map<String, LocalDateTime> alertTimes = new HashMap<>();
+        for (SMTPSink.ReceivedMessage message : messages) {
+            alerts.computeIfAbsent(alertKey(message, alertTimes), key -> new ArrayList<>()).add(message);
+        }
+        return alerts;
+    }
+
+    private static List<String> expectedRecipients(String text) {
+        Matcher sensor = SENSOR_LINE.matcher(text);
+        Matcher status = STATUS_LINE.matcher(text);
+        if (!sensor.find() || !status.find()) {
+            return null;
+        }
+        practical6.Severity severity = status.group(1).equals("HIGH ALERT")
+                ? practical6.Severity.HIGH_ALERT
+                : practical6.Severity.TRIGGERED;
+        for (char sensorKey : SENSOR_KEYS) {
+            if (practical6.sensorName(sensorKey).equals(sensor.group(1))) {
+                return practical6.resolveRecipients(sensorKey, severity);
+            }
+        }
+        return null;
+    }
+
+    // Undoes whichever transfer encoding the sender picked, so both paths compare against the file on disk
+    private static byte[] extractAttachment(String text) {
+        int part = text.indexOf("filename=\"" + ATTACHMENT.getFileName() + "\"");
+        int encodingStart = text.indexOf("Content-Transfer-Encoding: ", part);
+        if (part < 0 || encodingStart < 0) {
+            return null;
+        }
+        String encoding = text.substring(encodingStart + 27, text.indexOf("\r\n", encodingStart)).trim();
+        int start = text.indexOf("\r\n\r\n", encodingStart) + 4;
+        int end = text.lastIndexOf("\r\n--" + BOUNDARY + "--");
+        if (start < 4 || end < start) {
+            return null;
+        }
+        String content = text.substring(start, end);
+        if (encoding.equalsIgnoreCase("base64")) {
+            return Base64.getMimeDecoder().decode(content);
+        }
+        return encoding.equalsIgnoreCase("binary") ? content.getBytes(StandardCharsets.ISO_8859_1) : null;
+    }
+
+    // Trigger # restarts when an alert is cleared, so repeats of a sensor#count id are told apart by the
+    // alert's Time line and matched to the triggers in start order
+    private static long[] latencies(Trigger[] samples, List<SMTPSink.ReceivedMessage> messages,
+            List<SMTPSink.ReceivedMessage> rejected) {
+        // An alert is done when the last of its transactions got its 250
+        Map<String, Long> lastAccepted = new HashMap<>();
+        Map<String, LocalDateTime> alertTimes = new HashMap<>();
+        Set<String> failed = new HashSet<>();
+        for (SMTPSink.ReceivedMessage message : messages) {
+            lastAccepted.merge(alertKey(message, alertTimes), message.acceptedNanos, Math::max);
+        }
+        for (SMTPSink.ReceivedMessage message : rejected) {
+            failed.add(alertKey(message, alertTimes));
+        }
+
+        Map<String, List<String>> alertsById = new HashMap<>();
+        for (String alert : alertTimes.keySet()) {
+            alertsById.computeIfAbsent(alert.substring(0, alert.indexOf('|')), id -> new ArrayList<>()).add(alert);
+        }
+        Map<String, List<Trigger>> samplesById = new HashMap<>();
+        for (Trigger sample : samples) {
+            samplesById.computeIfAbsent(sample.id, id -> new ArrayList<>()).add(sample);
+        }
+
+        List<Long> latencies = new ArrayList<>();
+        samplesById.forEach((id, triggers) -> {
+            List<String> alerts = alertsById.getOrDefault(id, List.of());
+            triggers.sort(Comparator.comparingLong(sample -> sample.startNanos));
+            alerts.sort(Comparator.comparing(alertTimes::get));
+            for (int i = 0; i < Math.min(triggers.size(), alerts.size()); i++) {
+                String alert = alerts.get(i);
+                if (!failed.contains(alert) && lastAccepted.containsKey(alert)) {
+                    latencies.add(lastAccepted.get(alert) - triggers.get(i).startNanos);
+                }
+            }
+        });
+        return latencies.stream().mapToLong(Long::longValue).sorted().toArray();
+    }
+
+    private static String alertKey(SMTPSink.ReceivedMessage message, Map<String, LocalDateTime> alertTimes) {
+        String text = headText(message);
+        Matcher time = TIME_LINE.matcher(text);
+        String timestamp = time.find() ? time.group(1) : "";
+        String key = triggerId(message) + "|" + timestamp;
+        alertTimes.putIfAbsent(key, timestamp.isEmpty() ? LocalDateTime.MIN : LocalDateTime.parse(timestamp));
+        return key;
+    }
+
+    private static String headText(SMTPSink.ReceivedMessage message) {
+        return new String(message.data, 0, Math.min(message.data.length, HEAD_BYTES), StandardCharsets.ISO_8859_1);
+    }
+
+    private static Trigger[] runTriggers(int count, int threads, int alertLength) throws InterruptedException {
+        Trigger[] samples = new Trigger[count];
+        AtomicInteger next = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            pool.execute(() -> {
+                int i;
+                while ((i = next.getAndIncrement()) < count) {
+                    char sensorKey = SENSOR_KEYS[i % SENSOR_KEYS.length];
+                    long start = System.nanoTime();
+                    int triggerCount = practical6.handleSensorTrigger(sensorKey);
+                    samples[i] = new Trigger(practical6.sensorName(sensorKey) + "#" + triggerCount, start);
+                    if (alertLength > 0 && (i / SENSOR_KEYS.length + 1) % alertLength == 0) {
+                        practical6.clearAlert(SENSOR_KEYS[i % SENSOR_KEYS.length]);
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.HOURS);
+        return samples;
+    }
+
+    // practical6 numbers the triggers of each sensor, so sensor and trigger # identify the alert a message belongs to
+    private static String triggerId(SMTPSink.ReceivedMessage message) {
+        String text = headText(message);
+        Matcher sensor = SENSOR_LINE.matcher(text);
+        Matcher trigger = TRIGGER_LINE.matcher(text);
+        return sensor.find() && trigger.find() ? sensor.group(1) + "#" + trigger.group(1) : "";
+    }
+
+    private static double percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1_000_000.0;
+    }
+
+    private static class Trigger {
+        final String id;
+        final long startNanos;
+
+        Trigger(String id, long startNanos) {
+            this.id = id;
+            this.startNanos = startNanos;
+        }
+    }
+}
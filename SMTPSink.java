@@ -0,0 +1,465 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class SMTPSink implements Runnable {
+    private static final String CRLF = "\r\n";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final int port;
+    private final long responseDelayNanos;
+    private final double failureRate;
+    private final boolean chunking;
+    private final boolean pipelining;
+
+    private final List<ReceivedMessage> messages = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final List<ReceivedMessage> rejectedMessages = Collections.synchronizedList(new ArrayList<>());
+    private final CountDownLatch ready = new CountDownLatch(1);
+
+    private volatile boolean running;
+    private volatile int boundPort;
+    private Selector selector;
+    private Thread thread;
+
+    public SMTPSink(int port, long responseDelayMillis, double failureRate, boolean chunking, boolean pipelining) {
+        this.port = port;
+        this.responseDelayNanos = TimeUnit.MILLISECONDS.toNanos(responseDelayMillis);
+        this.failureRate = failureRate;
+        this.chunking = chunking;
+        this.pipelining = pipelining;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 2525;
+        long delayMillis = args.length > 1 ? Long.parseLong(args[1]) : 0;
+        double failureRate = args.length > 2 ? Double.parseDouble(args[2]) : 0.0;
+        boolean chunking = args.length <= 3 || Boolean.parseBoolean(args[3]);
+        boolean pipelining = args.length <= 4 || Boolean.parseBoolean(args[4]);
+
+        SMTPSink sink = new SMTPSink(port, delayMillis, failureRate, chunking, pipelining);
+        sink.start();
+        System.out.printf("SMTP sink listening on port %d (delay %d ms per reply, failure rate %.2f, CHUNKING/BINARYMIME %s, "
+                + "PIPELINING %s)%n", sink.getPort(), delayMillis, failureRate, chunking ? "on" : "off",
+                pipelining ? "on" : "off");
+        System.out.println("Press Enter to stop");
+        new Scanner(System.in).nextLine();
+        sink.stop();
+        System.out.printf("Received %d messages (%d rejected), %d bytes%n", sink.getMessages().size(),
+                sink.getRejectedMessages().size(), sink.getBytesReceived());
+    }
+
+    public void start() throws IOException {
+        selector = Selector.open();
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress("localhost", port));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        boundPort = server.socket().getLocalPort();
+
+        running = true;
+        thread = new Thread(this, "smtp-sink");
+        thread.setDaemon(true);
+        thread.start();
+        try {
+            ready.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void stop() {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int getPort() {
+        return boundPort;
+    }
+
+    public List<ReceivedMessage> getMessages() {
+        return messages;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    public List<ReceivedMessage> getRejectedMessages() {
+        return rejectedMessages;
+    }
+
+    public void reset() {
+        messages.clear();
+        bytesReceived.set(0);
+        rejectedMessages.clear();
+    }
+
+    @Override
+    public void run() {
+        ready.countDown();
+        try {
+            while (running) {
+                selector.select(nextTimeoutMillis());
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (key.isAcceptable()) {
+                            accept(key);
+                        } else if (key.isReadable()) {
+                            ((Session) key.attachment()).read();
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        // Drop only the offending session, the sink keeps serving everyone else
+                        closeQuietly(key);
+                    }
+                }
+                // Delayed replies become writable on the clock, not on a selector event
+                for (SelectionKey key : selector.keys()) {
+                    if (key.isValid() && key.attachment() instanceof Session) {
+                        try {
+                            ((Session) key.attachment()).flushDueReplies();
+                        } catch (IOException | RuntimeException e) {
+                            closeQuietly(key);
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("SMTP sink stopped: " + e.getMessage());
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                closeQuietly(key);
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private long nextTimeoutMillis() {
+        long now = System.nanoTime();
+        long next = Long.MAX_VALUE;
+        for (SelectionKey key : selector.keys()) {
+            if (key.isValid() && key.attachment() instanceof Session) {
+                Reply reply = ((Session) key.attachment()).replies.peek();
+                if (reply != null) {
+                    next = Math.min(next, reply.dueNanos - now);
+                }
+            }
+        }
+        if (next == Long.MAX_VALUE) {
+            return 0;
+        }
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(next));
+    }
+
+    private void accept(SelectionKey key) throws IOException {
+        SocketChannel channel = ((ServerSocketChannel) key.channel()).accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        Session session = new Session(channel);
+        channel.register(selector, SelectionKey.OP_READ, session);
+        session.reply("220 localhost SMTP sink ready");
+        session.flushDueReplies();
+    }
+
+    private static void closeQuietly(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private enum State {
+        COMMAND, DATA, BDAT
+    }
+
+    private static class Reply {
+        final ByteBuffer data;
+        final long dueNanos;
+        final ReceivedMessage accepted;
+        final boolean close;
+
+        Reply(String line, long dueNanos, ReceivedMessage accepted, boolean close) {
+            this.data = ByteBuffer.wrap((line + CRLF).getBytes(StandardCharsets.US_ASCII));
+            this.dueNanos = dueNanos;
+            this.accepted = accepted;
+            this.close = close;
+        }
+    }
+
+    public static class ReceivedMessage {
+        public final String from;
+        public final List<String> recipients;
+        public final byte[] data;
+        public final boolean chunked;
+        public volatile long acceptedNanos;
+
+        ReceivedMessage(String from, List<String> recipients, byte[] data, boolean chunked) {
+            this.from = from;
+            this.recipients = recipients;
+            this.data = data;
+            this.chunked = chunked;
+        }
+    }
+
+    private class Session {
+        private final SocketChannel channel;
+        private final Deque<Reply> replies = new ArrayDeque<>();
+        private ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+        private State state = State.COMMAND;
+
+        private String from;
+        private final List<String> recipients = new ArrayList<>();
+        private final ByteArrayOutputStream content = new ByteArrayOutputStream();
+        private long chunkRemaining;
+        private boolean lastChunk;
+
+        Session(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void read() throws IOException {
+            if (!in.hasRemaining()) {
+                ByteBuffer larger = ByteBuffer.allocate(in.capacity() * 2);
+                in.flip();
+                larger.put(in);
+                in = larger;
+            }
+            int read = channel.read(in);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            bytesReceived.addAndGet(read);
+
+            in.flip();
+            while (process()) {
+                // keep consuming pipelined commands and data
+            }
+            in.compact();
+            flushDueReplies();
+        }
+
+        private boolean process() {
+            switch (state) {
+                case BDAT:
+                    return consumeChunk();
+                case DATA:
+                    return consumeDataLine();
+                default:
+                    String line = nextLine();
+                    if (line == null) {
+                        return false;
+                    }
+                    handleCommand(line);
+                    return true;
+            }
+        }
+
+        private String nextLine() {
+            for (int i = in.position(); i < in.limit(); i++) {
+                if (in.get(i) == '\n') {
+                    byte[] bytes = new byte[i + 1 - in.position()];
+                    in.get(bytes);
+                    return new String(bytes, StandardCharsets.US_ASCII).trim();
+                }
+            }
+            return null;
+        }
+
+        private void handleCommand(String line) {
+            String command = line.length() >= 4 ? line.substring(0, 4).toUpperCase() : line.toUpperCase();
+            switch (command) {
+                case "EHLO":
+                    reply("250-localhost");
+                    if (pipelining) {
+                        reply("250-PIPELINING");
+                    }
+                    reply("250-8BITMIME");
+                    if (chunking) {
+                        reply("250-CHUNKING");
+                        reply("250-BINARYMIME");
+                    }
+                    reply("250 OK");
+                    break;
+                case "HELO":
+                    reply("250 localhost");
+                    break;
+                case "MAIL":
+                    resetTransaction();
+                    from = extractAddress(line);
+                    reply("250 OK");
+                    break;
+                case "RCPT":
+                    if (from == null) {
+                        reply("503 Need MAIL first");
+                    } else {
+                        recipients.add(extractAddress(line));
+                        reply("250 OK");
+                    }
+                    break;
+                case "DATA":
+                    if (recipients.isEmpty()) {
+                        reply("503 Need RCPT first");
+                    } else {
+                        state = State.DATA;
+                        reply("354 End data with <CR><LF>.<CR><LF>");
+                    }
+                    break;
+                case "BDAT":
+                    startChunk(line);
+                    break;
+                case "RSET":
+                    resetTransaction();
+                    reply("250 OK");
+                    break;
+                case "NOOP":
+                    reply("250 OK");
+                    break;
+                case "QUIT":
+                    replies.add(new Reply("221 Bye", System.nanoTime() + responseDelayNanos, null, true));
+                    break;
+                default:
+                    reply("500 Command not recognized");
+            }
+        }
+
+        private void startChunk(String line) {
+            String[] parts = line.split("\\s+");
+            if (!chunking) {
+                reply("500 Command not recognized");
+                return;
+            }
+            // Digits only, so a malformed or negative size never reaches the chunk reader
+            if (parts.length < 2 || !parts[1].matches("\\d{1,18}")) {
+                reply("501 Syntax error in BDAT chunk size");
+                return;
+            }
+            chunkRemaining = Long.parseLong(parts[1]);
+            lastChunk = parts.length > 2 && parts[2].equalsIgnoreCase("LAST");
+            state = State.BDAT;
+        }
+
+        private boolean consumeChunk() {
+            int count = (int) Math.min(chunkRemaining, in.remaining());
+            if (count == 0 && chunkRemaining > 0) {
+                return false;
+            }
+            content.write(in.array(), in.position(), count);
+            in.position(in.position() + count);
+            chunkRemaining -= count;
+            if (chunkRemaining > 0) {
+                return false;
+            }
+
+            state = State.COMMAND;
+            if (lastChunk) {
+                finishMessage(true);
+            } else if (from == null || recipients.isEmpty()) {
+                reply("503 Need MAIL and RCPT first");
+            } else {
+                reply("250 " + content.size() + " octets received");
+            }
+            return true;
+        }
+
+        private boolean consumeDataLine() {
+            for (int i = in.position(); i < in.limit(); i++) {
+                if (in.get(i) == '\n') {
+                    int start = in.position();
+                    int length = i + 1 - start;
+                    in.position(i + 1);
+
+                    byte[] array = in.array();
+                    boolean endOfData = array[start] == '.'
+                            && (length == 2 || (length == 3 && array[start + 1] == '\r'));
+                    if (endOfData) {
+                        state = State.COMMAND;
+                        finishMessage(false);
+                    } else if (array[start] == '.') {
+                        content.write(array, start + 1, length - 1);
+                    } else {
+                        content.write(array, start, length);
+                    }
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void finishMessage(boolean chunked) {
+            if (from == null || recipients.isEmpty()) {
+                reply("503 Need MAIL and RCPT first");
+            } else if (failureRate > 0 && ThreadLocalRandom.current().nextDouble() < failureRate) {
+                rejectedMessages.add(new ReceivedMessage(from, new ArrayList<>(recipients),
+                        content.toByteArray(), chunked));
+                reply("451 4.3.0 Injected failure");
+            } else {
+                ReceivedMessage message = new ReceivedMessage(from, new ArrayList<>(recipients),
+                        content.toByteArray(), chunked);
+                replies.add(new Reply("250 OK message accepted", System.nanoTime() + responseDelayNanos,
+                        message, false));
+            }
+            resetTransaction();
+        }
+
+        private void resetTransaction() {
+            from = null;
+            recipients.clear();
+            content.reset();
+            chunkRemaining = 0;
+            lastChunk = false;
+        }
+
+        private String extractAddress(String line) {
+            int start = line.indexOf('<');
+            int end = line.indexOf('>', start + 1);
+            return start >= 0 && end > start ? line.substring(start + 1, end) : line.substring(line.indexOf(':') + 1).trim();
+        }
+
+        // Every reply is held back by the configured delay, so each client round trip costs one delay and
+        // pipelined commands that arrive together share it
+        void reply(String line) {
+            replies.add(new Reply(line, System.nanoTime() + responseDelayNanos, null, false));
+        }
+
+        // Replies go out strictly in order, so a delayed reply holds back everything queued behind it
+        void flushDueReplies() throws IOException {
+            long now = System.nanoTime();
+            while (!replies.isEmpty() && replies.peek().dueNanos <= now) {
+                Reply reply = replies.peek();
+                channel.write(reply.data);
+                if (reply.data.hasRemaining()) {
+                    return;
+                }
+                replies.poll();
+                if (reply.accepted != null) {
+                    reply.accepted.acceptedNanos = System.nanoTime();
+                    messages.add(reply.accepted);
+                }
+                if (reply.close) {
+                    channel.close();
+                    return;
+                }
+            }
+        }
+    }
+}
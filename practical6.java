@@ -5,19 +5,52 @@ import java.time.LocalDateTime;
 import java.util.concurrent.*;
 import java.util.Base64;
 import java.nio.file.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.stream.Collectors;
 
 public class practical6 {
    
-    private static final String SMTP_SERVER = "localhost";
-    private static final int SMTP_PORT = 25;
+    private static final String SMTP_SERVER = System.getProperty("alarm.smtp.host", "localhost");
+    private static final int SMTP_PORT = Integer.getInteger("alarm.smtp.port", 25);
     private static final String FROM_EMAIL = "alarm@localhost";
     private static final String TO_EMAIL = "kutli@localhost";
     private static final int HIGH_ALERT_THRESHOLD = 3;
     private static final int RESEND_INTERVAL_MINUTES = 5;
     private static final String ATTACHMENT_PATH = "security.jpg"; 
+    private static final String BOUNDARY = "ALARM-BOUNDARY";
+    private static final String CRLF = "\r\n";
+
+    // RFC 5321 only guarantees 100 recipients per transaction
+    private static final int MAX_RCPTS_PER_TRANSACTION = 100;
+    private static final int MAX_PARALLEL_DELIVERIES = 4;
+    private static final int CONNECT_TIMEOUT_MILLIS = 10_000;
+    private static final int READ_TIMEOUT_MILLIS = 30_000;
+    private static final int DELIVERY_TIMEOUT_SECONDS = 60;
+    private static final InetSocketAddress DEFAULT_RELAY = InetSocketAddress.createUnresolved(SMTP_SERVER, SMTP_PORT);
+
+    enum Severity {
+        TRIGGERED, HIGH_ALERT
+    }
 
-    
-   
+    // '*' routes apply to every sensor; sensor specific routes are added on top
+    private static final Map<Character, EnumMap<Severity, List<String>>> ROUTING_TABLE = new HashMap<>() {
+        {
+            route('*', Severity.TRIGGERED, TO_EMAIL);
+            route('*', Severity.HIGH_ALERT, TO_EMAIL, "oncall@localhost");
+            route('1', Severity.HIGH_ALERT, "security@localhost");
+            route('2', Severity.HIGH_ALERT, "security@localhost");
+        }
+
+        private void route(char sensorKey, Severity severity, String... recipients) {
+            computeIfAbsent(sensorKey, key -> new EnumMap<>(Severity.class)).put(severity, List.of(recipients));
+        }
+    };
+
+    // Recipient domains that must go through a specific relay; all others use DEFAULT_RELAY.
+    // Configured with -Dalarm.relays=domain=host:port,domain=host:port
+    private static final Map<String, InetSocketAddress> DOMAIN_RELAYS = parseRelays(System.getProperty("alarm.relays", ""));
 
     private static final Map<Character, String> SENSOR_MAP = new HashMap<Character, String>() {
         {
@@ -30,12 +63,13 @@ public class practical6 {
     };
 
     private static final ConcurrentHashMap<String, AlertStatus> activeAlerts = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, ScheduledFuture<?>> resendTasks = new ConcurrentHashMap<>();
     private static final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+    private static final ExecutorService mailer = Executors.newFixedThreadPool(MAX_PARALLEL_DELIVERIES);
 
     private static class AlertStatus {
         int triggerCount;
         LocalDateTime lastSentTime;
-        ScheduledFuture<?> resendTask;
 
         AlertStatus(int triggerCount, LocalDateTime lastSentTime) {
             this.triggerCount = triggerCount;
@@ -56,7 +90,7 @@ public class practical6 {
 
             if (input.equals("q")) {
                 System.out.println("Exiting alarm system...");
-                scheduler.shutdown();
+                shutdown();
                 break;
             }
 
@@ -72,7 +106,29 @@ public class practical6 {
         scanner.close();
     }
 
-    private static void handleSensorTrigger(char sensorKey) {
+    static void shutdown() {
+        scheduler.shutdown();
+        mailer.shutdown();
+    }
+
+    static void clearAlert(char sensorKey) {
+        String sensorName = SENSOR_MAP.get(sensorKey);
+        activeAlerts.remove(sensorName);
+        ScheduledFuture<?> resendTask = resendTasks.remove(sensorName);
+        if (resendTask != null) {
+            resendTask.cancel(false);
+        }
+    }
+
+    static void resetAlerts() {
+        SENSOR_MAP.keySet().forEach(practical6::clearAlert);
+    }
+
+    static String sensorName(char sensorKey) {
+        return SENSOR_MAP.get(sensorKey);
+    }
+
+    static int handleSensorTrigger(char sensorKey) {
         String sensorName = SENSOR_MAP.get(sensorKey);
         System.out.println("ALERT: " + sensorName + " triggered!");
 
@@ -81,34 +137,38 @@ public class practical6 {
                         : new AlertStatus(existing.triggerCount + 1, LocalDateTime.now()));
 
         if (status.triggerCount >= HIGH_ALERT_THRESHOLD) {
-            handleHighAlert(sensorName, status);
+            handleHighAlert(sensorKey, sensorName, status);
         } else {
-            sendAlertEmail(sensorName, status.triggerCount);
+            sendAlertEmail(sensorKey, sensorName, status.triggerCount);
         }
+        return status.triggerCount;
     }
 
-    private static void handleHighAlert(String sensorName, AlertStatus status) {
+    private static void handleHighAlert(char sensorKey, String sensorName, AlertStatus status) {
         System.out.printf("HIGH ALERT: %s triggered %d times!%n", sensorName, status.triggerCount);
 
-        if (status.resendTask != null) {
-            status.resendTask.cancel(false);
-        }
+        sendAlertEmail(sensorKey, sensorName, status.triggerCount);
 
-        sendAlertEmail(sensorName, status.triggerCount);
-
-        status.resendTask = scheduler.scheduleAtFixedRate(
-                () -> {
-                    if (activeAlerts.containsKey(sensorName)) {
-                        System.out.println("Resending HIGH ALERT for " + sensorName);
-                        sendAlertEmail(sensorName, activeAlerts.get(sensorName).triggerCount);
-                    }
-                },
-                RESEND_INTERVAL_MINUTES,
-                RESEND_INTERVAL_MINUTES,
-                TimeUnit.MINUTES);
+        // Each trigger builds a fresh AlertStatus, so the resend task is tracked per sensor to replace the old one
+        resendTasks.compute(sensorName, (key, existing) -> {
+            if (existing != null) {
+                existing.cancel(false);
+            }
+            return scheduler.scheduleAtFixedRate(
+                    () -> {
+                        AlertStatus current = activeAlerts.get(sensorName);
+                        if (current != null) {
+                            System.out.println("Resending HIGH ALERT for " + sensorName);
+                            sendAlertEmail(sensorKey, sensorName, current.triggerCount);
+                        }
+                    },
+                    RESEND_INTERVAL_MINUTES,
+                    RESEND_INTERVAL_MINUTES,
+                    TimeUnit.MINUTES);
+        });
     }
 
-    private static void sendAlertEmail(String sensorName, int triggerCount) {
+    private static void sendAlertEmail(char sensorKey, String sensorName, int triggerCount) {
         String status = triggerCount >= HIGH_ALERT_THRESHOLD ? "HIGH ALERT" : "Triggered";
         String subject = String.format("%s: %s Triggered%s",
                 triggerCount >= HIGH_ALERT_THRESHOLD ? "HIGH ALARM" : "ALARM",
@@ -132,84 +192,283 @@ public class practical6 {
                 status,
                 LocalDateTime.now());
 
-        try {
-            sendEmail(subject, body);
-            System.out.println("Notification email sent to " + TO_EMAIL);
-        } catch (IOException e) {
-            System.err.println("Failed to send email: " + e.getMessage());
+        Severity severity = triggerCount >= HIGH_ALERT_THRESHOLD ? Severity.HIGH_ALERT : Severity.TRIGGERED;
+        Map<InetSocketAddress, List<String>> groups = groupByRelay(resolveRecipients(sensorKey, severity));
+
+        // One transaction per relay batch, independent relays delivered in parallel
+        Map<Future<Map<String, String>>, List<String>> deliveries = new LinkedHashMap<>();
+        groups.forEach((relay, recipients) -> {
+            for (int i = 0; i < recipients.size(); i += MAX_RCPTS_PER_TRANSACTION) {
+                List<String> batch = recipients.subList(i, Math.min(i + MAX_RCPTS_PER_TRANSACTION, recipients.size()));
+                deliveries.put(mailer.submit(() -> sendEmail(relay, batch, subject, body)), batch);
+            }
+        });
+
+        // One deadline for the whole fan-out, a dead relay must not hold up the rest of the alarm system
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(DELIVERY_TIMEOUT_SECONDS);
+        deliveries.forEach((delivery, recipients) -> {
+            try {
+                Map<String, String> rejected = delivery.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                List<String> delivered = new ArrayList<>(recipients);
+                delivered.removeAll(rejected.keySet());
+                System.out.println("Notification email sent to " + String.join(", ", delivered));
+                // A 4xx here is only transient for the relay, the alarm still did not reach this person
+                rejected.forEach((recipient, response) -> System.err.println(
+                        "Failed to send email to " + recipient + ": " + response));
+            } catch (ExecutionException e) {
+                System.err.println("Failed to send email to " + String.join(", ", recipients) + ": "
+                        + e.getCause().getMessage());
+            } catch (TimeoutException e) {
+                delivery.cancel(true);
+                System.err.println("Failed to send email to " + String.join(", ", recipients) + ": timed out after "
+                        + DELIVERY_TIMEOUT_SECONDS + " seconds");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                System.err.println("Interrupted while sending email to " + recipients);
+            }
+        });
+    }
+
+    static void addRoute(char sensorKey, Severity severity, List<String> recipients) {
+        EnumMap<Severity, List<String>> routes = ROUTING_TABLE.computeIfAbsent(sensorKey, key -> new EnumMap<>(Severity.class));
+        List<String> merged = new ArrayList<>(routes.getOrDefault(severity, List.of()));
+        merged.addAll(recipients);
+        routes.put(severity, List.copyOf(merged));
+    }
+
+    private static Map<String, InetSocketAddress> parseRelays(String spec) {
+        Map<String, InetSocketAddress> relays = new HashMap<>();
+        for (String entry : spec.split(",")) {
+            if (entry.isBlank()) {
+                continue;
+            }
+            String[] parts = entry.trim().split("=");
+            int colon = parts.length == 2 ? parts[1].lastIndexOf(':') : -1;
+            if (colon < 0) {
+                throw new IllegalArgumentException("Invalid alarm.relays entry, expected domain=host:port: " + entry);
+            }
+            relays.put(parts[0].toLowerCase(), InetSocketAddress.createUnresolved(parts[1].substring(0, colon),
+                    Integer.parseInt(parts[1].substring(colon + 1))));
+        }
+        return relays;
+    }
+
+    private static List<String> routesFor(char sensorKey, Severity severity) {
+        EnumMap<Severity, List<String>> routes = ROUTING_TABLE.get(sensorKey);
+        return routes == null ? List.of() : routes.getOrDefault(severity, List.of());
+    }
+
+    static List<String> resolveRecipients(char sensorKey, Severity severity) {
+        Set<String> recipients = new LinkedHashSet<>();
+        recipients.addAll(routesFor('*', severity));
+        recipients.addAll(routesFor(sensorKey, severity));
+        if (recipients.isEmpty()) {
+            recipients.add(TO_EMAIL);
         }
+        return new ArrayList<>(recipients);
     }
 
-    private static void sendEmail(String subject, String body) throws IOException {
-        try (Socket socket = new Socket(SMTP_SERVER, SMTP_PORT);
-                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
+    private static Map<InetSocketAddress, List<String>> groupByRelay(List<String> recipients) {
+        return recipients.stream().collect(Collectors.groupingBy(
+                recipient -> {
+                    String domain = recipient.substring(recipient.lastIndexOf('@') + 1).toLowerCase();
+                    return DOMAIN_RELAYS.getOrDefault(domain, DEFAULT_RELAY);
+                },
+                LinkedHashMap::new,
+                Collectors.toList()));
+    }
+
+    // Returns the recipients the relay refused, mapped to its reply; the rest were delivered
+    private static Map<String, String> sendEmail(InetSocketAddress relay, List<String> recipients,
+            String subject, String body) throws IOException {
+        try (SocketChannel channel = connect(relay);
+                BufferedReader in = new BufferedReader(new InputStreamReader(channel.socket().getInputStream()));
+                PrintWriter out = new PrintWriter(channel.socket().getOutputStream(), true)) {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
 
             // SMTP Handshake
             validateResponse(in, "220", "SMTP server error");
-            out.println("EHLO " + InetAddress.getLocalHost().getHostName());
-            readMultiLineResponse(in);
+            sendRaw(out, "EHLO " + InetAddress.getLocalHost().getHostName());
+            Set<String> extensions = parseExtensions(readMultiLineResponse(in));
+
+            Path attachment = ATTACHMENT_PATH != null && Files.exists(Paths.get(ATTACHMENT_PATH))
+                    ? Paths.get(ATTACHMENT_PATH)
+                    : null;
+            // Raw binary attachments need BDAT, DATA cannot carry arbitrary bytes
+            boolean binary = attachment != null
+                    && extensions.contains("CHUNKING") && extensions.contains("BINARYMIME");
+
+            sendCommand(out, in, "MAIL FROM:<" + FROM_EMAIL + ">" + (binary ? " BODY=BINARYMIME" : ""),
+                    "250", "MAIL FROM rejected");
+
+            List<String> accepted = new ArrayList<>();
+            Map<String, String> rejected = new LinkedHashMap<>();
+            for (String recipient : recipients) {
+                sendRaw(out, "RCPT TO:<" + recipient + ">");
+                String response = in.readLine();
+                if (response != null && (response.startsWith("250") || response.startsWith("251"))) {
+                    accepted.add(recipient);
+                } else {
+                    rejected.put(recipient, response);
+                }
+            }
+            if (accepted.isEmpty()) {
+                sendRaw(out, "QUIT");
+                throw new IOException("No recipients accepted by " + relay + ": " + rejected.values());
+            }
 
-            
+            if (binary) {
+                sendChunked(channel, in, extensions.contains("PIPELINING"),
+                        buildMessageHead(accepted, subject, body, true), attachment);
+            } else {
+                sendCommand(out, in, "DATA", "354", "DATA rejected");
+                for (String line : buildMessage(accepted, subject, body, attachment).split(CRLF, -1)) {
+                    // Dot-stuffing so a leading '.' is not taken as end of data
+                    out.print((line.startsWith(".") ? "." + line : line) + CRLF);
+                }
+                sendCommand(out, in, ".", "250", "Message sending failed");
+            }
 
-            if (ATTACHMENT_PATH != null && Files.exists(Paths.get(ATTACHMENT_PATH))) {
-                out.println("Content-Type: multipart/mixed; boundary=\"ALARM-BOUNDARY\"");
-                out.println();
+            sendCommand(out, in, "QUIT", "221", "QUIT failed");
+            return rejected;
+        }
+    }
 
-                
-                out.println("--ALARM-BOUNDARY");
-                out.println("Content-Type: text/plain; charset=UTF-8");
-                out.println();
-                out.println(body);
-                out.println();
+    private static SocketChannel connect(InetSocketAddress relay) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().connect(new InetSocketAddress(relay.getHostString(), relay.getPort()),
+                    CONNECT_TIMEOUT_MILLIS);
+            channel.socket().setSoTimeout(READ_TIMEOUT_MILLIS);
+            return channel;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
 
-                
-                attachFile(out, ATTACHMENT_PATH);
-                out.println("--ALARM-BOUNDARY--");
-            } else {
-                out.println("Content-Type: text/plain; charset=UTF-8");
-                out.println();
-                out.println(body);
+    private static void sendChunked(SocketChannel channel, BufferedReader in, boolean pipelining,
+            String head, Path attachment) throws IOException {
+        byte[] headBytes = (head + attachmentHeaders(attachment, "binary")).getBytes(StandardCharsets.UTF_8);
+        byte[] tailBytes = (CRLF + "--" + BOUNDARY + "--" + CRLF).getBytes(StandardCharsets.US_ASCII);
+
+        // With PIPELINING all three chunks go out back to back and their replies are read at the end
+        writeChunk(channel, "BDAT " + headBytes.length, headBytes);
+        if (!pipelining) {
+            validateResponse(in, "250", "Message sending failed");
+        }
+
+        // The image goes straight from the file to the socket without being copied or encoded
+        try (FileChannel file = FileChannel.open(attachment, StandardOpenOption.READ)) {
+            long size = file.size();
+            writeChunk(channel, "BDAT " + size, new byte[0]);
+            for (long position = 0; position < size;) {
+                long sent = file.transferTo(position, size - position, channel);
+                // The snapshot shrank after BDAT announced its size, the chunk can no longer be completed
+                if (sent == 0) {
+                    throw new IOException(attachment + " ended after " + position + " of " + size + " bytes");
+                }
+                position += sent;
             }
+        }
+        if (!pipelining) {
+            validateResponse(in, "250", "Message sending failed");
+        }
 
-            out.println(".");
+        writeChunk(channel, "BDAT " + tailBytes.length + " LAST", tailBytes);
+        int replies = pipelining ? 3 : 1;
+        for (int i = 0; i < replies; i++) {
             validateResponse(in, "250", "Message sending failed");
+        }
+    }
 
-            sendCommand(out, in, "QUIT", "221", "QUIT failed");
+    private static void writeChunk(SocketChannel channel, String command, byte[] payload) throws IOException {
+        byte[] commandBytes = (command + CRLF).getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer buffer = ByteBuffer.allocate(commandBytes.length + payload.length);
+        buffer.put(commandBytes).put(payload).flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
         }
     }
 
+    private static Set<String> parseExtensions(String ehloResponse) {
+        Set<String> extensions = new HashSet<>();
+        String[] lines = ehloResponse.split("\n");
+        // First line is the server greeting, the rest are "250-KEYWORD params"
+        for (int i = 1; i < lines.length; i++) {
+            if (lines[i].length() > 4) {
+                extensions.add(lines[i].substring(4).trim().split("\\s+")[0].toUpperCase());
+            }
+        }
+        return extensions;
+    }
 
-    private static void attachFile(PrintWriter out, String filePath) throws IOException {
-        Path path = Paths.get(filePath);
-        String fileName = path.getFileName().toString();
+    private static String buildMessage(List<String> recipients, String subject, String body, Path attachment)
+            throws IOException {
+        StringBuilder message = new StringBuilder(buildMessageHead(recipients, subject, body, attachment != null));
+        if (attachment != null) {
+            attachFile(message, attachment);
+            message.append("--" + BOUNDARY + "--");
+        }
+        return message.toString();
+    }
+
+    private static String buildMessageHead(List<String> recipients, String subject, String body, boolean multipart) {
+        StringBuilder message = new StringBuilder();
+        message.append("From: ").append(FROM_EMAIL).append(CRLF);
+        message.append("To: ").append(String.join(", ", recipients)).append(CRLF);
+        message.append("Subject: ").append(subject).append(CRLF);
+        message.append("MIME-Version: 1.0").append(CRLF);
+
+        if (multipart) {
+            message.append("Content-Type: multipart/mixed; boundary=\"" + BOUNDARY + "\"").append(CRLF);
+            message.append(CRLF);
+
+            message.append("--" + BOUNDARY).append(CRLF);
+            message.append("Content-Type: text/plain; charset=UTF-8").append(CRLF);
+            message.append(CRLF);
+            message.append(body.replace("\n", CRLF)).append(CRLF);
+        } else {
+            message.append("Content-Type: text/plain; charset=UTF-8").append(CRLF);
+            message.append(CRLF);
+            message.append(body.replace("\n", CRLF));
+        }
+        return message.toString();
+    }
+
+    private static void attachFile(StringBuilder message, Path path) throws IOException {
         byte[] fileData = Files.readAllBytes(path);
         String encoded = Base64.getEncoder().encodeToString(fileData);
 
-        out.println("-ALARM-");
-        out.println("Content-Type: application/octet-stream");
-        out.println("Content-Disposition: attachment; filename=\"" + fileName + "\"");
-        out.println("Content-Transfer-Encoding: base64");
-        out.println();
-
-       
+        message.append(attachmentHeaders(path, "base64"));
         for (int i = 0; i < encoded.length(); i += 76) {
-            out.println(encoded.substring(i, Math.min(i + 76, encoded.length())));
+            message.append(encoded, i, Math.min(i + 76, encoded.length())).append(CRLF);
         }
-        out.println();
     }
 
-    
+    private static String attachmentHeaders(Path path, String transferEncoding) {
+        String fileName = path.getFileName().toString();
+        return "--" + BOUNDARY + CRLF
+                + "Content-Type: application/octet-stream" + CRLF
+                + "Content-Disposition: attachment; filename=\"" + fileName + "\"" + CRLF
+                + "Content-Transfer-Encoding: " + transferEncoding + CRLF
+                + CRLF;
+    }
 
     private static void sendCommand(PrintWriter out, BufferedReader in,
             String command, String expectedCode, String errorMsg) throws IOException {
-        out.println(command);
+        sendRaw(out, command);
         validateResponse(in, expectedCode, errorMsg);
     }
 
+    private static void sendRaw(PrintWriter out, String line) {
+        out.print(line + CRLF);
+        out.flush();
+    }
+
     private static void validateResponse(BufferedReader in, String expectedCode, String errorMsg) throws IOException {
         String response = in.readLine();
-        if (!response.startsWith(expectedCode)) {
+        if (response == null || !response.startsWith(expectedCode)) {
             throw new IOException(errorMsg + ": " + response);
         }
     }